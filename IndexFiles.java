@@ -0,0 +1,339 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/** Indexes all text files under a directory in the format TfIdfViewer and SearchFiles expect:
+ *  an untokenized "path" field and a "contents" field with term vectors */
+public class IndexFiles {
+
+  // marks the end of the work queue; one per consumer
+  private static final File DONE = new File("");
+
+  private IndexFiles() {}
+
+  public static void main(String[] args) throws Exception {
+    String usage =
+      "Usage:\tjava IndexFiles [-index dir] [-docs dir] [-update] [-threads n] [-ram mb]"
+      + " [-vectors prefix] [-format binary|svmlight]";
+    if (args.length > 0 && ("-h".equals(args[0]) || "-help".equals(args[0]))) {
+      System.out.println(usage);
+      System.exit(0);
+    }
+
+    String index = "index";
+    String docs = null;
+    boolean update = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    double ramBufferMB = 64;
+    String vectors = null;
+    boolean binary = true;
+
+    for(int i = 0;i < args.length;i++) {
+      if ("-index".equals(args[i])) {
+        index = args[i+1];
+        i++;
+      } else if ("-docs".equals(args[i])) {
+        docs = args[i+1];
+        i++;
+      } else if ("-update".equals(args[i])) {
+        update = true;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        if (threads <= 0) {
+          System.err.println("There must be at least 1 thread.");
+          System.exit(1);
+        }
+        i++;
+      } else if ("-ram".equals(args[i])) {
+        ramBufferMB = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-vectors".equals(args[i])) {
+        vectors = args[i+1];
+        i++;
+      } else if ("-format".equals(args[i])) {
+        if ("binary".equals(args[i+1])) {
+          binary = true;
+        } else if ("svmlight".equals(args[i+1]) || "libsvm".equals(args[i+1])) {
+          binary = false;
+        } else {
+          System.err.println("Unknown format: " + args[i+1]);
+          System.exit(1);
+        }
+        i++;
+      }
+    }
+
+    if (docs == null) {
+      System.err.println(usage);
+      System.exit(1);
+    }
+    File docDir = new File(docs);
+    if (!docDir.exists() || !docDir.canRead()) {
+      System.out.println("Document directory '" + docDir.getAbsolutePath()
+          + "' does not exist or is not readable, please check the path");
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    System.out.println("Indexing to directory '" + index + "'...");
+
+    Directory dir = FSDirectory.open(new File(index));
+    try {
+      Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_31);
+      IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_31, analyzer);
+      iwc.setOpenMode(update ? OpenMode.CREATE_OR_APPEND : OpenMode.CREATE);
+      iwc.setRAMBufferSizeMB(ramBufferMB);
+      iwc.setMaxThreadStates(threads);
+
+      // on failure, roll back so that the last commit (or the index being replaced) survives
+      IndexReader previous = null;
+      IndexWriter writer = null;
+      long indexed;
+      boolean success = false;
+      try {
+        // in update mode, a snapshot of the index tells which files are already up to date
+        if (update && IndexReader.indexExists(dir)) previous = IndexReader.open(dir);
+        writer = new IndexWriter(dir, iwc);
+
+        Set<String> seen = previous != null ? new HashSet<String>() : null;
+        indexed = indexDocs(writer, previous, docDir, threads, seen);
+        if (previous != null) {
+          int deleted = deleteMissing(writer, previous, docDir, seen);
+          System.out.println(deleted + " documents deleted");
+          // replaced and deleted documents still count in docFreq until merged away;
+          // drop them so that the sidecars' idfs reflect only the files on disk
+          if (vectors != null) writer.expungeDeletes();
+        }
+        writer.commit();
+        success = true;
+      } finally {
+        if (writer != null) {
+          if (success) {
+            writer.close();
+          } else {
+            writer.rollback();
+          }
+        }
+        if (previous != null) previous.close();
+      }
+
+      Date end = new Date();
+      long time = end.getTime() - start.getTime();
+      System.out.println(indexed + " documents indexed in " + time + " total milliseconds ("
+          + (1000 * indexed / Math.max(1, time)) + " docs/sec)");
+
+      // build the idf and tf-idf vector sidecars from the index just committed
+      if (vectors != null) {
+        IndexReader reader = IndexReader.open(dir);
+        try {
+          TfIdfExporter.export(reader, "contents", vectors, binary, false, threads, 1 << 20, 10);
+        } finally {
+          reader.close();
+        }
+      }
+    } finally {
+      dir.close();
+    }
+  }
+
+  // Walks docDir on the calling thread and hands the files to `threads` consumers,
+  // which analyze and add them concurrently through the shared writer.
+  // If seen is not null, the paths of all files found are added to it.
+  // The first failure of a consumer stops the walk and the other consumers.
+  // Returns the number of documents added or updated.
+  private static long indexDocs(final IndexWriter writer, final IndexReader previous, File docDir,
+                                int threads, Set<String> seen) throws Exception {
+    final BlockingQueue<File> queue = new ArrayBlockingQueue<>(16 * threads);
+    final AtomicBoolean failed = new AtomicBoolean();
+    final AtomicLong indexed = new AtomicLong();
+    final long start = System.currentTimeMillis();
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> consumers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      consumers.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            for (File file = queue.take(); file != DONE; file = queue.take()) {
+              if (failed.get()) continue;  // another consumer failed: just drain
+              if (indexDoc(writer, previous, file)) {
+                long n = indexed.incrementAndGet();
+                if (n % 10000 == 0) {
+                  long time = System.currentTimeMillis() - start;
+                  System.out.println(n + " documents, " + (1000 * n / Math.max(1, time)) + " docs/sec");
+                }
+              }
+            }
+          } catch (Throwable t) {
+            // stop the walk and the other consumers, and keep draining
+            // so that the producer never blocks on a full queue
+            failed.set(true);
+            while (queue.take() != DONE);
+            throw t;
+          }
+          return null;
+        }
+      }));
+    }
+    pool.shutdown();
+
+    try {
+      walk(docDir, queue, seen, failed);
+    } finally {
+      for (int i = 0; i < threads; i++) {
+        queue.put(DONE);
+      }
+    }
+
+    for (Future<Void> f : consumers) {
+      f.get();  // rethrows the first failure of a consumer
+    }
+    return indexed.get();
+  }
+
+  // Puts every readable file under file into queue, and its path into seen if not null.
+  // Stops as soon as failed is set.
+  private static void walk(File file, BlockingQueue<File> queue, Set<String> seen,
+                           AtomicBoolean failed) throws InterruptedException {
+    if (failed.get() || !file.canRead()) return;
+    if (file.isDirectory()) {
+      String[] files = file.list();
+      // an IO error could occur
+      if (files != null) {
+        for (int i = 0; i < files.length; i++) {
+          walk(new File(file, files[i]), queue, seen, failed);
+        }
+      }
+    } else {
+      if (seen != null) seen.add(file.getPath());
+      queue.put(file);
+    }
+  }
+
+  // Deletes the documents of previous under docDir whose file was not seen in this walk,
+  // i.e. that were removed from disk since the last update. Returns how many were deleted.
+  private static int deleteMissing(IndexWriter writer, IndexReader previous, File docDir,
+                                   Set<String> seen) throws IOException {
+    String prefix = docDir.getPath();
+    String dirPrefix = prefix.endsWith(File.separator) ? prefix : prefix + File.separator;
+    int deleted = 0;
+    TermEnum te = previous.terms(new Term("path", prefix));
+    try {
+      do {
+        Term t = te.term();
+        if (t == null || !t.field().equals("path") || !t.text().startsWith(prefix)) break;
+        String path = t.text();
+        // only paths inside docDir, not siblings such as "docs2" for "docs"
+        boolean inside = path.equals(prefix) || path.startsWith(dirPrefix);
+        if (inside && !seen.contains(path)) {
+          writer.deleteDocuments(t);
+          deleted++;
+        }
+      } while (te.next());
+    } finally {
+      te.close();
+    }
+    return deleted;
+  }
+
+  // Adds file to the index, replacing any older version with the same path.
+  // Returns false if previous already holds the file with the same modification time.
+  private static boolean indexDoc(IndexWriter writer, IndexReader previous, File file) throws IOException {
+    String path = file.getPath();
+    long modified = file.lastModified();
+    if (previous != null && isUpToDate(previous, path, modified)) return false;
+
+    FileInputStream fis;
+    try {
+      fis = new FileInputStream(file);
+    } catch (FileNotFoundException fnfe) {
+      // at least on windows, some temporary files raise this exception with an "access denied" message
+      // checking if the file can be read doesn't help
+      return false;
+    }
+
+    try {
+      Document doc = new Document();
+
+      // untokenized, so that findDocId can look a file up by its exact path
+      doc.add(new Field("path", path, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+
+      // stored, so that incremental updates can compare it with the file on disk
+      NumericField modifiedField = new NumericField("modified", Field.Store.YES, true);
+      modifiedField.setLongValue(modified);
+      doc.add(modifiedField);
+
+      // term vectors are required by toTfIdf
+      doc.add(new Field("contents", new BufferedReader(new InputStreamReader(fis, "UTF-8")),
+                        Field.TermVector.YES));
+
+      // analysis happens here, on the calling thread
+      writer.updateDocument(new Term("path", path), doc);
+    } finally {
+      fis.close();
+    }
+    return true;
+  }
+
+  // Returns true if reader has a document for path indexed at the given modification time
+  private static boolean isUpToDate(IndexReader reader, String path, long modified) throws IOException {
+    TermDocs td = reader.termDocs(new Term("path", path));
+    try {
+      if (!td.next()) return false;
+      String stored = reader.document(td.doc()).get("modified");
+      return stored != null && Long.parseLong(stored) == modified;
+    } finally {
+      td.close();
+    }
+  }
+}
@@ -45,13 +45,32 @@ public class SearchFiles {
   public static double a = 0.75;
   public static double b = 0.25;
   public static int nrounds = 5;
+  public static long budget = 0;  // milliseconds per query for relevance feedback, 0 = no limit
+  public static long minFeedbackTime = 10;  // milliseconds below which no round is started
+
+  // Ways in which userRelevanceFeedback may cut work to stay within its budget
+  public enum Degradation { REDUCED_K, REDUCED_N, SKIPPED_ROUNDS, UNEXPANDED, SEARCH_FAILED }
+
+  // The query produced by userRelevanceFeedback, the number of rounds applied
+  // and the degradations needed to stay within the budget
+  public static class Feedback {
+    public final Query query;
+    public final int rounds;
+    public final EnumSet<Degradation> degradations;
+
+    public Feedback(Query query, int rounds, EnumSet<Degradation> degradations) {
+      this.query = query;
+      this.rounds = rounds;
+      this.degradations = degradations;
+    }
+  }
 
   private SearchFiles() {}
 
   /** Simple command-line based search demo. */
   public static void main(String[] args) throws Exception {
     String usage =
-      "Usage:\tjava org.apache.lucene.demo.SearchFiles [-index dir] [-field f] [-repeat n] [-queries file] [-query string] [-raw] [-paging hitsPerPage]\n\nSee http://lucene.apache.org/java/4_0/demo.html for details.";
+      "Usage:\tjava org.apache.lucene.demo.SearchFiles [-index dir] [-field f] [-repeat n] [-queries file] [-query string] [-raw] [-paging hitsPerPage] [-budget ms]\n\nSee http://lucene.apache.org/java/4_0/demo.html for details.";
     if (args.length > 0 && ("-h".equals(args[0]) || "-help".equals(args[0]))) {
       System.out.println(usage);
       System.exit(0);
@@ -90,6 +109,13 @@ public class SearchFiles {
           System.exit(1);
         }
         i++;
+      } else if ("-budget".equals(args[i])) {
+        budget = Long.parseLong(args[i+1]);
+        if (budget < 0) {
+          System.err.println("The budget must be 0 (no limit) or a positive number of milliseconds.");
+          System.exit(1);
+        }
+        i++;
       }
     }
     
@@ -132,7 +158,11 @@ public class SearchFiles {
         System.out.println("Time: "+(end.getTime()-start.getTime())+"ms");
       }
 
-      query = userRelevanceFeedback(query,searcher,nrounds);
+      Feedback feedback = userRelevanceFeedback(query,searcher,nrounds,budget);
+      query = feedback.query;
+      if (!feedback.degradations.isEmpty()) {
+        System.out.println("Feedback applied " + feedback.rounds + " rounds, degraded: " + feedback.degradations);
+      }
 
       Set<Term> queryTerms = new HashSet<Term>();
       query.extractTerms(queryTerms);
@@ -266,7 +296,7 @@ public class SearchFiles {
   }
 
   // Removes all but the N heaviest components from the query
-  private static TermWeight[] Purge(TermWeight[] query) {
+  private static TermWeight[] Purge(TermWeight[] query, int N) {
     ArrayList<TermWeight> tmp = new ArrayList<>(Arrays.asList(query));
     Collections.sort(tmp, new Comparator<TermWeight>() {
       @Override
@@ -284,6 +314,7 @@ public class SearchFiles {
       }
     });
 
+    N = Math.min(N, tmp.size());
     query = new TermWeight[N];
     for (int i = 0; i < N; ++i)
       query[i] = tmp.get(i);
@@ -292,7 +323,7 @@ public class SearchFiles {
   }
 
   // With the given query and the list of results, it computes a new query using Rocchio's rule
-  private static Query Rocchio(Query query, TopDocs results, int k, IndexReader reader) throws Exception {
+  private static Query Rocchio(Query query, TopDocs results, int k, int N, IndexReader reader) throws Exception {
     k = Math.min(k,results.scoreDocs.length);
     if (k == 0) return query;
 
@@ -329,7 +360,7 @@ public class SearchFiles {
     TermWeight[] newQuery = add(R1,R2);
 
     // Purge new query
-    newQuery = Purge(newQuery);
+    newQuery = Purge(newQuery,N);
 
     // Transform the TermWeight array into an instance of Lucene Query class
     StringBuilder sb = new StringBuilder();
@@ -345,20 +376,120 @@ public class SearchFiles {
   }
 
   public static Query userRelevanceFeedback(Query query, IndexSearcher searcher, int nrounds) throws Exception {
+      return userRelevanceFeedback(query, searcher, nrounds, 0).query;
+  }
+
+  // Same as above, but spending at most budget milliseconds (0 = no limit).
+  // No round is started with less than minFeedbackTime left. Before each later round,
+  // the measured costs of the previous one are compared with the time left, estimating
+  // the search cost per query term, since each round searches the query the previous
+  // one built, which may have many more terms:
+  // - if the search of the current query does not fit, the rounds left are skipped;
+  // - if the search plus the feedback does not fit, fewer documents (k) are read;
+  // - if the query this round builds could not be searched in the time left after it,
+  //   fewer terms (N) are kept.
+  // The first round has no measured cost to go by, and with a cold idf cache it is
+  // usually the most expensive one. A round that overruns the budget anyway is
+  // discarded, and the query of the last round that finished in time is returned.
+  // Whenever no round could be applied because of the budget or a failure,
+  // UNEXPANDED is reported along with the reason.
+  public static Feedback userRelevanceFeedback(Query query, IndexSearcher searcher, int nrounds, long budget) throws Exception {
+      long deadline = System.nanoTime() + budget * 1000000L;
+      EnumSet<Degradation> degradations = EnumSet.noneOf(Degradation.class);
+      IndexReader reader = searcher.getIndexReader();
+      int k = SearchFiles.k;
+      int N = SearchFiles.N;
+      long searchCost = -1;    // nanoseconds taken by the previous round
+      long feedbackCost = -1;
+      int searchTerms = 1;     // terms in the query searched by the previous round
+      int feedbackK = 1;       // documents read by the previous round
+      int rounds = 0;
+
       for (int i = 1; i < nrounds; i++) {
+        int terms = numTerms(query);
+        if (budget > 0) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining < minFeedbackTime * 1000000L) {
+            degradations.add(Degradation.SKIPPED_ROUNDS);
+            break;
+          }
+          if (searchCost >= 0) {
+            // this round searches the query the previous one built: if that
+            // does not fit, keep it as it is
+            long termCost = Math.max(1, searchCost / searchTerms);
+            long roundSearch = termCost * terms;
+            if (roundSearch > remaining) {
+              degradations.add(Degradation.SKIPPED_ROUNDS);
+              break;
+            }
+
+            // the feedback cost grows with the number of document vectors read
+            if (roundSearch + feedbackCost > remaining) {
+              int newK = (int)(feedbackK * (remaining - roundSearch) / Math.max(1, feedbackCost));
+              if (newK < 1) {
+                degradations.add(Degradation.SKIPPED_ROUNDS);
+                break;
+              }
+              k = Math.min(k, newK);
+              degradations.add(Degradation.REDUCED_K);
+            }
+
+            // the query built here is searched again afterwards; keep only
+            // as many terms as can be searched in the time left after this round
+            long left = remaining - roundSearch - feedbackCost * k / feedbackK;
+            if (left < termCost * N) {
+              int newN = (int)(left / termCost);
+              if (newN < 1) {
+                degradations.add(Degradation.SKIPPED_ROUNDS);
+                break;
+              }
+              N = newN;
+              degradations.add(Degradation.REDUCED_N);
+            }
+          }
+        }
+
+        long t0 = System.nanoTime();
         TopDocs results;
         try {
           results = searcher.search(query, k);
         }
         catch (Exception e) {
+          degradations.add(Degradation.SEARCH_FAILED);
           break;
         }
+        long t1 = System.nanoTime();
         k = Math.min(k,results.totalHits);
-        IndexReader reader = searcher.getIndexReader();
-        query = Rocchio(query, results, k, reader);
+        if (k == 0) break;
+        Query expanded = Rocchio(query, results, k, N, reader);
+        long t2 = System.nanoTime();
+
+        // a round that overran the budget is discarded
+        if (budget > 0 && t2 > deadline) {
+          degradations.add(Degradation.SKIPPED_ROUNDS);
+          break;
+        }
+
+        query = expanded;
+        searchCost = t1 - t0;
+        feedbackCost = t2 - t1;
+        searchTerms = terms;
+        feedbackK = k;
+        ++rounds;
       }
 
-      return query;
+      if (rounds == 0 && !degradations.isEmpty()) {
+        degradations.add(Degradation.UNEXPANDED);
+      }
+
+      return new Feedback(query, rounds, degradations);
+  }
+
+  // Returns the number of distinct terms in query, at least 1
+  private static int numTerms(Query query) {
+    Set<Term> terms = new HashSet<Term>();
+    query.extractTerms(terms);
+    return Math.max(1, terms.size());
   }
 
   /**
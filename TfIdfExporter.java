@@ -0,0 +1,348 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermFreqVector;
+import org.apache.lucene.store.FSDirectory;
+
+/** Exports every document of the index in tf-idf vector format to sharded files */
+public class TfIdfExporter {
+
+  // magic number and version at the start of every binary shard ("TFIV", 1)
+  public static final int MAGIC = 0x54464956;
+  public static final int VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private TfIdfExporter() {}
+
+  public static void main(String[] args) throws Exception {
+    String usage =
+      "Usage:\tjava TfIdfExporter [-index dir] [-field f] [-out prefix] [-format binary|svmlight]"
+      + " [-threads n] [-normalize] [-buffer kilobytes] [-progress seconds]";
+    if (args.length > 0 && ("-h".equals(args[0]) || "-help".equals(args[0]))) {
+      System.out.println(usage);
+      System.exit(0);
+    }
+
+    String index = "index";
+    String field = "contents";
+    String out = "vectors";
+    boolean binary = true;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean normalize = false;
+    int bufferSize = 1 << 20;
+    int progress = 10;
+
+    for(int i = 0;i < args.length;i++) {
+      if ("-index".equals(args[i])) {
+        index = args[i+1];
+        i++;
+      } else if ("-field".equals(args[i])) {
+        field = args[i+1];
+        i++;
+      } else if ("-out".equals(args[i])) {
+        out = args[i+1];
+        i++;
+      } else if ("-format".equals(args[i])) {
+        if ("binary".equals(args[i+1])) {
+          binary = true;
+        } else if ("svmlight".equals(args[i+1]) || "libsvm".equals(args[i+1])) {
+          binary = false;
+        } else {
+          System.err.println("Unknown format: " + args[i+1]);
+          System.exit(1);
+        }
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        if (threads <= 0) {
+          System.err.println("There must be at least 1 thread.");
+          System.exit(1);
+        }
+        i++;
+      } else if ("-normalize".equals(args[i])) {
+        normalize = true;
+      } else if ("-buffer".equals(args[i])) {
+        bufferSize = Integer.parseInt(args[i+1]) * 1024;
+        if (bufferSize <= 0) {
+          System.err.println("The buffer must be at least 1 kilobyte.");
+          System.exit(1);
+        }
+        i++;
+      } else if ("-progress".equals(args[i])) {
+        progress = Integer.parseInt(args[i+1]);
+        i++;
+      }
+    }
+
+    IndexReader reader = IndexReader.open(FSDirectory.open(new File(index)));
+    try {
+      export(reader, field, out, binary, normalize, threads, bufferSize, progress);
+    } finally {
+      reader.close();
+    }
+  }
+
+  // Vocabulary of a field: its terms in index order and their idf.
+  // The id of a term is its position, so the (sorted) terms of a term vector
+  // map to increasing ids, as SVMlight requires.
+  private static class Vocabulary {
+    String[] terms;
+    double[] idf;
+    int size;
+
+    // Returns the id of term, searching from id `from` on; since term vectors
+    // are sorted, passing the previous id + 1 narrows every search
+    int id(String term, int from) {
+      int id = Arrays.binarySearch(terms, from, size, term);
+      if (id < 0) {
+        throw new IllegalStateException("term " + term + " not in the vocabulary");
+      }
+      return id;
+    }
+  }
+
+  // Enumerates all terms of field once and computes their idf (base 10 logs),
+  // so workers never have to call docFreq per term.
+  // Unlike toTfIdf, which divides numDocs by docFreq, this uses maxDoc: docFreq
+  // still counts deleted documents until they are merged away, so both sides of
+  // the ratio include them and the idf never becomes negative.
+  private static Vocabulary loadVocabulary(IndexReader reader, String field) throws IOException {
+    Vocabulary voc = new Vocabulary();
+    voc.terms = new String[1024];
+    voc.idf = new double[1024];
+    int maxDoc = reader.maxDoc();
+
+    TermEnum te = reader.terms(new Term(field, ""));
+    try {
+      do {
+        Term t = te.term();
+        if (t == null || !t.field().equals(field)) break;
+        if (voc.size == voc.terms.length) {
+          voc.terms = Arrays.copyOf(voc.terms, 2 * voc.size);
+          voc.idf = Arrays.copyOf(voc.idf, 2 * voc.size);
+        }
+        voc.terms[voc.size] = t.text();
+        voc.idf[voc.size] = Math.log10((double)maxDoc / (double)te.docFreq());
+        voc.size++;
+      } while (te.next());
+    } finally {
+      te.close();
+    }
+
+    voc.terms = Arrays.copyOf(voc.terms, voc.size);
+    voc.idf = Arrays.copyOf(voc.idf, voc.size);
+    return voc;
+  }
+
+  // Splits [0,maxDoc) into one contiguous docId range per thread; each range
+  // is written to its own shard, so concatenating shards in order yields
+  // the documents in docId order
+  public static void export(final IndexReader reader, final String field, String out,
+                            final boolean binary, final boolean normalize, int threads,
+                            final int bufferSize, int progress) throws Exception {
+    long start = System.currentTimeMillis();
+    final Vocabulary voc = loadVocabulary(reader, field);
+    writeVocabulary(voc, out + ".terms", bufferSize);
+    System.out.println(voc.size + " terms in field " + field
+        + " (" + (System.currentTimeMillis() - start) + "ms)");
+
+    final int maxDoc = reader.maxDoc();
+    threads = Math.max(1, Math.min(threads, maxDoc));
+    final AtomicLong done = new AtomicLong();
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<Long>> shards = new ArrayList<>();
+    for (int s = 0; s < threads; s++) {
+      final int from = (int)((long)maxDoc * s / threads);
+      final int to = (int)((long)maxDoc * (s + 1) / threads);
+      final File file = new File(String.format("%s-%05d.%s", out, s, binary ? "bin" : "svm"));
+      shards.add(pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return exportRange(reader, field, voc, from, to, file, binary, normalize, bufferSize, done);
+        }
+      }));
+    }
+    pool.shutdown();
+
+    // report progress until all shards are written, stopping at the first failure
+    long last = start;
+    long lastDone = 0;
+    while (!pool.awaitTermination(Math.max(1, progress), TimeUnit.SECONDS)) {
+      for (Future<Long> f : shards) {
+        if (!f.isDone()) continue;
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          pool.shutdownNow();
+          throw e;
+        }
+      }
+      long now = System.currentTimeMillis();
+      long d = done.get();
+      System.out.println(d + "/" + maxDoc + " docs (" + (100 * d / Math.max(1, maxDoc)) + "%), "
+          + (1000 * (d - lastDone) / Math.max(1, now - last)) + " docs/sec");
+      last = now;
+      lastDone = d;
+    }
+
+    long written = 0;
+    for (Future<Long> f : shards) {
+      written += f.get();  // rethrows the first failure of a worker
+    }
+    long time = System.currentTimeMillis() - start;
+    System.out.println(written + " vectors written to " + threads + " shards in " + time + "ms ("
+        + (1000 * written / Math.max(1, time)) + " docs/sec)");
+  }
+
+  // Writes the vectors of documents [from,to) to file and returns how many were written.
+  // Besides the shared vocabulary, memory is bounded by one output buffer
+  // plus the term vector being processed.
+  private static long exportRange(IndexReader reader, String field, Vocabulary voc,
+                                  int from, int to, File file, boolean binary, boolean normalize,
+                                  int bufferSize, AtomicLong done) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+    StringBuilder sb = new StringBuilder();
+    int[] ids = new int[0];
+    double[] ws = new double[0];
+    long written = 0;
+
+    FileChannel ch = new FileOutputStream(file).getChannel();
+    try {
+      if (binary) {
+        buf.putInt(MAGIC).putInt(VERSION);
+      }
+      for (int docId = from; docId < to; docId++) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException("export of " + file + " cancelled");
+        }
+        if (reader.isDeleted(docId)) continue;
+
+        // compute the tf-idf weights, as in toTfIdf but with precomputed idfs
+        TermFreqVector tfv = reader.getTermFreqVector(docId, field);
+        int n = 0;
+        if (tfv != null) {
+          String[] terms = tfv.getTerms();
+          int[] freqs = tfv.getTermFrequencies();
+          if (ids.length < terms.length) {
+            ids = new int[terms.length];
+            ws = new double[terms.length];
+          }
+
+          int fmax = 0;
+          for (int f : freqs) {
+            if (f > fmax) fmax = f;
+          }
+
+          double norm = 0;
+          int id = -1;
+          for (int i = 0; i < terms.length; i++) {
+            id = voc.id(terms[i], id + 1);
+            double w = ((double)freqs[i] / (double)fmax) * voc.idf[id];
+            if (w == 0) continue;  // term in every document (idf 0)
+            ids[n] = id;
+            ws[n] = w;
+            norm += w * w;
+            n++;
+          }
+
+          if (normalize && norm > 0) {
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < n; i++) {
+              ws[i] /= norm;
+            }
+          }
+        }
+
+        if (binary) {
+          // docId, number of non-zero components, then (termId, weight) pairs
+          int size = 8 + 8 * n;
+          if (buf.remaining() < size) flush(ch, buf);
+          ByteBuffer dst = buf.remaining() < size ? ByteBuffer.allocate(size) : buf;
+          dst.putInt(docId).putInt(n);
+          for (int i = 0; i < n; i++) {
+            dst.putInt(ids[i]).putFloat((float)ws[i]);
+          }
+          if (dst != buf) {
+            // larger than the whole buffer: written on its own
+            flush(ch, dst);
+          }
+        } else {
+          // SVMlight: target, then index:value for the non-zero components,
+          // with 1-based increasing indices
+          sb.setLength(0);
+          sb.append('0');
+          for (int i = 0; i < n; i++) {
+            sb.append(' ').append(ids[i] + 1).append(':').append((float)ws[i]);
+          }
+          sb.append(" # ").append(docId).append('\n');
+          byte[] bytes = sb.toString().getBytes(UTF8);
+          put(ch, buf, bytes);
+        }
+
+        written++;
+        done.incrementAndGet();
+      }
+      flush(ch, buf);
+    } finally {
+      ch.close();
+    }
+    return written;
+  }
+
+  // Writes one line per term: id (0-based, add 1 for SVMlight), term and idf
+  private static void writeVocabulary(Vocabulary voc, String filename, int bufferSize) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+    FileChannel ch = new FileOutputStream(filename).getChannel();
+    try {
+      for (int i = 0; i < voc.size; i++) {
+        byte[] bytes = (i + "\t" + voc.terms[i] + "\t" + voc.idf[i] + "\n").getBytes(UTF8);
+        put(ch, buf, bytes);
+      }
+      flush(ch, buf);
+    } finally {
+      ch.close();
+    }
+  }
+
+  // Appends bytes to buf, flushing it to ch first if they do not fit
+  private static void put(FileChannel ch, ByteBuffer buf, byte[] bytes) throws IOException {
+    if (buf.remaining() < bytes.length) flush(ch, buf);
+    if (buf.remaining() < bytes.length) {
+      ByteBuffer big = ByteBuffer.wrap(bytes);
+      while (big.hasRemaining()) {
+        ch.write(big);
+      }
+    } else {
+      buf.put(bytes);
+    }
+  }
+
+  // Writes out the contents of buf and leaves it empty
+  private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      ch.write(buf);
+    }
+    buf.clear();
+  }
+}